@@ -17,10 +17,54 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
+import java.math.BigDecimal;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TimeZone;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,10 +76,13 @@ public class DBProject {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // in-memory indexes over the tables, shared by the daemon's connections;
+   // null when running without them
+   private DataState _state = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   static SessionReader in = new SessionReader();
 
    /**
     * Creates a new instance of DBProject
@@ -125,6 +172,118 @@ public class DBProject {
       return rowCount;
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction and hand each row to
+    * a handler instead of printing it.  The same ResultRow buffer is
+    * refilled for every row, so handlers copy out what they keep.
+    *
+    * @param query the input query string
+    * @param limit the most rows to fetch, 0 for all of them
+    * @param handler called once per row, returns false to stop early
+    * @return the number of rows handed to the handler
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, int limit, RowHandler handler) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try{
+         if (limit > 0) stmt.setMaxRows (limit);
+         ResultSet rs = stmt.executeQuery (query);
+         ResultRow row = new ResultRow (rs.getMetaData ());
+         int rowCount = 0;
+         while (rs.next()){
+            row.fill (rs);
+            ++rowCount;
+            if (!handler.row (row)) break;
+         }//end while
+         return rowCount;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executeQuery
+
+   /**
+    * Method to execute an input query SQL instruction and collect the
+    * result into one array per column.
+    *
+    * @param query the input query string
+    * @param limit the most rows to fetch, 0 for all of them
+    * @return the result columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultColumns executeColumns (String query, int limit) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try{
+         if (limit > 0) stmt.setMaxRows (limit);
+         ResultSet rs = stmt.executeQuery (query);
+         // columns come from the metadata, so an empty result still has them
+         ResultRow row = new ResultRow (rs.getMetaData ());
+         ResultColumns columns = new ResultColumns (row);
+         while (rs.next()){
+            row.fill (rs);
+            columns.add (row);
+         }//end while
+         return columns;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executeColumns
+
+   /**
+    * Method to count the rows an input query would return.  The count is
+    * done by the server, so none of the rows are transferred.
+    *
+    * @param query the input query string
+    * @return the number of rows the query returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeCount (String query) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery ("SELECT COUNT(*) FROM (" + query + ") AS counted");
+         rs.next ();
+         return rs.getLong (1);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end executeCount
+
+   /**
+    * Method to execute a query whose rows are (groupID, memberID) pairs and
+    * collect the member ids under their group id, in the order returned.
+    *
+    * @param query the input query string, selecting two integer columns
+    * @return the member ids keyed by group id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Map<Integer, List<Integer>> executeGroupedQuery (String query) throws SQLException {
+      final Map<Integer, List<Integer>> groups = new TreeMap<Integer, List<Integer>>();
+      executeQuery (query, 0, new RowHandler() {
+         public boolean row (ResultRow row) {
+            Integer group = (int) row.getLong (1);
+            List<Integer> members = groups.get (group);
+            if (members == null){
+               members = new ArrayList<Integer>();
+               groups.put (group, members);
+            }//end if
+            members.add ((int) row.getLong (2));
+            return true;
+         }
+      });
+      return groups;
+   }//end executeGroupedQuery
+
+   /**
+    * Method to catch the in-memory indexes up with the tables before a
+    * menu operation reads them.
+    *
+    * @return the indexes, or null when this connection runs without them
+    * @throws java.sql.SQLException when failed to read the change log
+    */
+   public DataState state () throws SQLException {
+      if (_state != null) _state.refresh (this);
+      return _state;
+   }//end state
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -144,12 +303,29 @@ public class DBProject {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length == 2 && args[0].equals("--client")) {
+         try{
+            client(Integer.parseInt(args[1]));
+         }catch(Exception e){
+            System.err.println (e.getMessage ());
+         }
+         return;
+      }//end if
+      boolean record = args.length == 5 && args[3].equals("--record");
+      boolean replay = (args.length == 8 || args.length == 9) && args[3].equals("--replay");
+      boolean daemon = args.length == 6 && args[3].equals("--daemon");
+      boolean bench = args.length == 6 && args[3].equals("--bench-startup");
+      boolean snapshot = args.length == 5 && args[3].equals("--snapshot");
+      if (args.length != 3 && !record && !replay && !daemon && !bench && !snapshot) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             DBProject.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user>" +
+            " [--record <log> | --replay <log> <sessions> <thinkMs> <opsPerSec> [synthetic]" +
+            " | --daemon <listenPort> <connections> | --bench-startup <daemonPort> <runs>" +
+            " | --snapshot <file>]\n" +
+            "   or: java " + DBProject.class.getName () + " --client <daemonPort>");
          return;
       }//end if
       
@@ -163,10 +339,53 @@ public class DBProject {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
+         if (replay) {
+            replay(dbname, dbport, user, args[4], Integer.parseInt(args[5]),
+                   Long.parseLong(args[6]), Double.parseDouble(args[7]),
+                   args.length == 9 && args[8].equals("synthetic"));
+            return;
+         }//end if
+         if (daemon) {
+            daemon(dbname, dbport, user, Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+            return;
+         }//end if
+         if (bench) {
+            benchStartup(dbname, dbport, user, Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+            return;
+         }//end if
+         if (record) in.record(args[4]);
          esql = new DBProject (dbname, dbport, user, "");
+         if (snapshot) {
+            snapshot(esql, args[4]);
+            return;
+         }//end if
+         esql._state = loadState(esql, dbname);
 
          boolean keepon = true;
          while(keepon) {
+            printMenu();
+            keepon = runChoice(esql, readChoice());
+            in.endOperation();
+         }//end while
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               saveState(esql._state, args[0]);
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+         in.stopRecording();
+      }//end try
+   }//end main
+
+   public static void printMenu(){
             // These are sample SQL statements
 				System.out.println("MAIN MENU");
 				System.out.println("---------");
@@ -188,8 +407,16 @@ public class DBProject {
 				System.out.println("16. Get number of repairs occurred per year for a given hotel room");
 				System.out.println("17. < EXIT");
             System.out.println("18. List requests for a maintenance company");
+            System.out.println("19. Auto-assign house cleaning staff to all rooms");
+   }//end printMenu
 
-            switch (readChoice()){
+   /*
+    * Runs the menu operation for the given choice
+    * @return false once the user asked to exit
+    **/
+   public static boolean runChoice(DBProject esql, int choice) {
+            boolean keepon = true;
+            switch (choice){
 				   case 1: addCustomer(esql); break;
 				   case 2: addRoom(esql); break;
 				   case 3: addMaintenanceCompany(esql); break;
@@ -208,24 +435,11 @@ public class DBProject {
 				   case 16: numberOfRepairsForEachRoomPerYear(esql); break;
 				   case 17: keepon = false; break;
                	   case 18: requestsGivenCID(esql); break;
+               	   case 19: autoAssignHouseCleaning(esql); break;
 				   default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-         }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+            return keepon;
+   }//end runChoice
    
    public static void Greeting(){
       System.out.println(
@@ -235,7 +449,7 @@ public class DBProject {
    }//end Greeting
 
    /*
-    * Reads the users choice given from the keyboard
+    * Reads the users choice given from the keyboard, EXIT once input ends
     * @int
     **/
    public static int readChoice() {
@@ -244,7 +458,9 @@ public class DBProject {
       do {
          System.out.print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            String line = in.readChoiceLine();
+            if (line == null) return 17;
+            input = Integer.parseInt(line);
             break;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
@@ -257,7 +473,7 @@ public class DBProject {
    
    public static void addCustomer(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Customer ID: ");
         String idString = input.readLine();
@@ -303,7 +519,7 @@ public class DBProject {
 
 public static void addRoom(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Hotel ID: ");
         String idString = input.readLine();
@@ -335,7 +551,7 @@ public static void addRoom(DBProject esql) {
 
 public static void addMaintenanceCompany(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Company ID: ");
         int cmpID = Integer.parseInt(input.readLine());
@@ -364,7 +580,7 @@ public static void addMaintenanceCompany(DBProject esql) {
 
 public static void addRepair(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Repair ID: ");
         int rID = Integer.parseInt(input.readLine());
@@ -402,7 +618,7 @@ public static void addRepair(DBProject esql) {
 
 public static void bookRoom(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Booking ID: ");
         int bID = Integer.parseInt(input.readLine());
@@ -440,7 +656,7 @@ public static void bookRoom(DBProject esql) {
 
 public static void assignHouseCleaningToRoom(DBProject esql){
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Assignment ID: ");
         int asgID = Integer.parseInt(input.readLine());
@@ -466,10 +682,129 @@ public static void assignHouseCleaningToRoom(DBProject esql){
         System.err.println(e.getMessage());
     }
 }
+
+   /*
+    * Assigns the house cleaning staff of every hotel to that hotel's rooms in
+    * one pass.  Each room goes to the hotel cleaner with the fewest
+    * assignments so far, counting the rows already in Assigned, so repeated
+    * runs keep the cleaners' loads level.  Rooms that already have an
+    * assignment are skipped, and if a date is given only the rooms booked
+    * on that date are assigned.
+    **/
+   public static void autoAssignHouseCleaning(DBProject esql){
+      ExecutorService pool = null;
+      try{
+         System.out.print("\tEnter date to only assign booked rooms (YYYY-MM-DD, blank for all rooms): ");
+         String date = in.readLine().trim();
+         long start = System.currentTimeMillis();
+
+         // load cleaners and unassigned rooms, grouped by hotel
+         Map<Integer, List<Integer>> staff = esql.executeGroupedQuery(
+            "SELECT employerID, SSN FROM Staff " +
+            "WHERE role = 'HouseCleaning' " +
+            "ORDER BY employerID, SSN");
+         String roomQuery = "SELECT DISTINCT R.hotelID, R.roomNo FROM Room R ";
+         if (date.length() > 0){
+            roomQuery +=
+               "JOIN Booking B ON B.hotelID = R.hotelID AND B.roomNo = R.roomNo " +
+               "AND B.bookingDate = '" + date + "' ";
+         }
+         roomQuery +=
+            "WHERE NOT EXISTS (SELECT 1 FROM Assigned A " +
+            "WHERE A.hotelID = R.hotelID AND A.roomNo = R.roomNo) " +
+            "ORDER BY R.hotelID, R.roomNo";
+         Map<Integer, List<Integer>> rooms = esql.executeGroupedQuery(roomQuery);
+         final Map<Integer, Integer> load = new TreeMap<Integer, Integer>();
+         esql.executeQuery("SELECT staffID, COUNT(*) FROM Assigned GROUP BY staffID", 0, new RowHandler() {
+            public boolean row(ResultRow row) {
+               load.put((int) row.getLong(1), (int) row.getLong(2));
+               return true;
+            }
+         });
+
+         // compute each hotel's assignment on its own thread
+         pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+         Map<Integer, Future<int[]>> plans = new TreeMap<Integer, Future<int[]>>();
+         for (Map.Entry<Integer, List<Integer>> entry : rooms.entrySet()){
+            final List<Integer> hotelStaff = staff.get(entry.getKey());
+            final int roomCount = entry.getValue().size();
+            if (hotelStaff == null) continue; // no cleaners employed here
+            plans.put(entry.getKey(), pool.submit(new Callable<int[]>() {
+               public int[] call() {
+                  // {assignments, SSN} of each cleaner, least loaded first
+                  PriorityQueue<int[]> heap = new PriorityQueue<int[]>(hotelStaff.size(), new Comparator<int[]>() {
+                     public int compare(int[] a, int[] b) {
+                        return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (a[1] < b[1] ? -1 : a[1] > b[1] ? 1 : 0);
+                     }
+                  });
+                  for (int ssn : hotelStaff){
+                     Integer current = load.get(ssn);
+                     heap.add(new int[] { current == null ? 0 : current, ssn });
+                  }
+                  int[] cleaner = new int[roomCount];
+                  for (int i = 0; i < roomCount; ++i){
+                     int[] least = heap.poll();
+                     cleaner[i] = least[1];
+                     ++least[0];
+                     heap.add(least);
+                  }
+                  return cleaner;
+               }
+            }));
+         }
+
+         // write the result back, one multi-row insert per hotel (split into
+         // chunks for big hotels); the driver runs a JDBC batch as one
+         // round trip per row
+         Statement stmt = esql._connection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(asgID), 0) + 1 FROM Assigned");
+         rs.next();
+         int asgID = rs.getInt(1);
+         stmt.close();
+
+         // join the caller's transaction if there is one, as during a replay
+         boolean ownTransaction = esql._connection.getAutoCommit();
+         int assigned = 0;
+         if (ownTransaction) esql._connection.setAutoCommit(false);
+         try{
+            Statement insert = esql._connection.createStatement();
+            for (Map.Entry<Integer, Future<int[]>> plan : plans.entrySet()){
+               int hotelID = plan.getKey();
+               List<Integer> hotelRooms = rooms.get(hotelID);
+               int[] cleaner = plan.getValue().get();
+               for (int from = 0; from < cleaner.length; from += 1000){
+                  StringBuilder values = new StringBuilder(
+                     "INSERT INTO Assigned (asgID, staffID, hotelID, roomNo) VALUES ");
+                  for (int i = from; i < Math.min(from + 1000, cleaner.length); ++i){
+                     if (i > from) values.append(", ");
+                     values.append('(').append(asgID++).append(", ").append(cleaner[i])
+                           .append(", ").append(hotelID).append(", ").append(hotelRooms.get(i)).append(')');
+                  }
+                  insert.executeUpdate(values.toString());
+               }
+               assigned += cleaner.length;
+            }
+            insert.close();
+            if (ownTransaction) esql._connection.commit();
+         }catch(Exception e){
+            if (ownTransaction) esql._connection.rollback();
+            throw e;
+         }finally{
+            if (ownTransaction) esql._connection.setAutoCommit(true);
+         }
+
+         System.out.println("\tAssigned " + assigned + " rooms across " + plans.size() +
+                            " hotels in " + (System.currentTimeMillis() - start) + " ms");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if (pool != null) pool.shutdown();
+      }
+   }//end autoAssignHouseCleaning
    
 public static void repairRequest(DBProject esql) {
     try {
-        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        BufferedReader input = in;
 
         System.out.print("\tEnter Request ID: ");
         int reqID = Integer.parseInt(input.readLine());
@@ -505,12 +840,14 @@ public static void repairRequest(DBProject esql) {
       // ...
       // ...
    try {
-   String query = "SELECT * FROM Room WHERE hotelID = ";
+   String query = "SELECT roomNo FROM Room WHERE hotelID = ";
          System.out.print("\tEnter hotelID: $");
          String input = in.readLine();
          query += input;
 
-         int rowCount = esql.executeQuery(query);
+         DataState state = esql.state();
+         long rowCount = state != null ? state.roomsOf(Integer.parseInt(input.trim())).length
+                                       : esql.executeCount(query);
          System.out.println ("Number of rooms for hotel " + input + " is "  + rowCount);
       } catch(Exception e){
          System.err.println (e.getMessage());
@@ -532,7 +869,17 @@ public static void repairRequest(DBProject esql) {
             "FROM Booking " +
             "WHERE hotelID = " + hid + " AND bookingDate = '" + date + "'";
 
-         int rowCount = esql.executeQuery(query);
+         // with the indexes, look up only that day's bookings
+         DataState state = esql.state();
+         long rowCount;
+         if (state == null) rowCount = esql.executeCount(query);
+         else {
+            int[] booked = state.bookingsOn(epochDay(date), 1);
+            rowCount = booked.length == 0 ? 0 : esql.executeCount(
+               "SELECT DISTINCT roomNo " +
+               "FROM Booking " +
+               "WHERE hotelID = " + hid + " AND bID IN (" + idList(booked) + ")");
+         }
          System.out.println("Number of booked rooms on " + date +
                             " for hotel " + hid + " is: " + rowCount);
       }catch(Exception e){
@@ -558,8 +905,20 @@ public static void repairRequest(DBProject esql) {
             "WHERE hotelID = " + hid + " " +
             "AND bookingDate BETWEEN '" + date + "'::date AND ('" + date + "'::date + 6) " +
             "ORDER BY bookingDate, roomNo";
+         //with the indexes, look up only the week's bookings
+         DataState state = esql.state();
+         int[] booked = null;
+         if (state != null){
+            booked = state.bookingsOn(epochDay(date), 7);
+            query =
+               "SELECT hotelID, roomNo, bookingDate, customer, price " +
+               "FROM Booking " +
+               "WHERE hotelID = " + hid + " " +
+               "AND bID IN (" + idList(booked) + ") " +
+               "ORDER BY bookingDate, roomNo";
+         }
          //execute query, printing the results
-         int rowCount = esql.executeQuery(query);
+         int rowCount = booked != null && booked.length == 0 ? 0 : esql.executeQuery(query);
          System.out.println("Total bookings for the week: " + rowCount);
       } catch(Exception e){
          System.err.println(e.getMessage());
@@ -760,12 +1119,1241 @@ public static void repairRequest(DBProject esql) {
             "FROM Request R INNER JOIN Repair RP ON R.repairID = RP.rID " +
             "WHERE RP.mCompany = " + cmpID;
 
+        // with the indexes, read the requests by id instead of joining
+        DataState state = esql.state();
+        if (state != null) {
+            int[] requests = state.requestsOfCompany(Integer.parseInt(cmpID.trim()));
+            if (requests.length == 0) return;
+            query =
+                "SELECT reqID, managerID, repairID, requestDate, description " +
+                "FROM Request " +
+                "WHERE reqID IN (" + idList(requests) + ")";
+        }
+
         esql.executeQuery(query);
     } catch (Exception e) {
         System.err.println(e.getMessage());
     }
 }//end listRequestsForCompany
 
+   /*
+    * Replays recorded menu sessions against the database, each session on
+    * its own connection and thread, then prints throughput, latency
+    * percentiles and error counts per menu operation.
+    *
+    * thinkMs is the pause before every operation, or -1 to reuse the
+    * recorded pauses.  opsPerSec caps the combined rate across sessions,
+    * 0 for no cap.  Synthetic sessions keep the recorded session lengths
+    * but draw their operations at random from every recorded operation.
+    *
+    * Every operation runs in a transaction that is rolled back afterwards,
+    * so replays leave the data as they found it and can be repeated.  The
+    * recorded inserts were committed while recording, so replay against a
+    * database recreated from create.sql for write operations to succeed.
+    **/
+   public static void replay(String dbname, String dbport, String user, String logFile,
+                             int sessions, final long thinkMs, double opsPerSec,
+                             boolean synthetic) throws Exception {
+      List<List<RecordedOp>> recorded = RecordedOp.load(logFile);
+      List<RecordedOp> allOps = new ArrayList<RecordedOp>();
+      for (List<RecordedOp> session : recorded) allOps.addAll(session);
+      if (allOps.isEmpty())
+         throw new IOException("No operations recorded in " + logFile);
+
+      // pick the operations each replayed session will run
+      Random random = new Random(sessions);
+      List<List<RecordedOp>> workload = new ArrayList<List<RecordedOp>>();
+      for (int i = 0; i < sessions; ++i){
+         List<RecordedOp> template = recorded.get(i % recorded.size());
+         if (!synthetic){
+            workload.add(template);
+            continue;
+         }
+         List<RecordedOp> ops = new ArrayList<RecordedOp>();
+         for (int j = 0; j < template.size(); ++j)
+            ops.add(allOps.get(random.nextInt(allOps.size())));
+         workload.add(ops);
+      }
+
+      DBProject[] connections = new DBProject[sessions];
+      for (int i = 0; i < sessions; ++i){
+         connections[i] = new DBProject(dbname, dbport, user, "");
+         connections[i]._connection.setAutoCommit(false);
+      }
+
+      // silence the operations' output, anything on stderr marks a failure
+      final Map<Integer, List<Long>> latencies = new TreeMap<Integer, List<Long>>();
+      final Map<Integer, int[]> errors = new TreeMap<Integer, int[]>();
+      final ThreadLocal<boolean[]> failed = new ThreadLocal<boolean[]>() {
+         protected boolean[] initialValue() { return new boolean[1]; }
+      };
+      PrintStream out = System.out;
+      PrintStream err = System.err;
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write(int b) {}
+      }));
+      System.setErr(new PrintStream(new OutputStream() {
+         public void write(int b) { failed.get()[0] = true; }
+      }));
+
+      final long interval = opsPerSec > 0 ? (long) (1e9 / opsPerSec) : 0;
+      final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+      ExecutorService pool = Executors.newFixedThreadPool(sessions);
+      long start = System.nanoTime();
+      try{
+         for (int i = 0; i < sessions; ++i){
+            final DBProject esql = connections[i];
+            final List<RecordedOp> ops = workload.get(i);
+            pool.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  for (RecordedOp op : ops){
+                     Thread.sleep(thinkMs >= 0 ? thinkMs : op.think);
+                     if (interval > 0){
+                        long wait = nextSlot.getAndAdd(interval) - System.nanoTime();
+                        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                     }
+                     failed.get()[0] = false;
+                     in.replayInputs(new LinkedList<String>(op.inputs));
+                     long t0 = System.nanoTime();
+                     try{
+                        runChoice(esql, op.choice);
+                     }catch(Exception e){
+                        failed.get()[0] = true;
+                     }
+                     long elapsed = System.nanoTime() - t0;
+                     try{
+                        esql._connection.rollback();
+                     }catch(SQLException e){
+                        failed.get()[0] = true;
+                     }
+                     synchronized (latencies){
+                        if (!latencies.containsKey(op.choice)){
+                           latencies.put(op.choice, new ArrayList<Long>());
+                           errors.put(op.choice, new int[1]);
+                        }
+                        latencies.get(op.choice).add(elapsed);
+                        if (failed.get()[0]) ++errors.get(op.choice)[0];
+                     }
+                  }
+                  return null;
+               }
+            });
+         }
+         pool.shutdown();
+         pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      }finally{
+         System.setOut(out);
+         System.setErr(err);
+         for (DBProject esql : connections)
+            if (esql != null) esql.cleanup();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println("choice\tcount\terrors\tops/s\tp50ms\tp95ms\tp99ms\tmaxms\tnote");
+      int total = 0, totalErrors = 0;
+      boolean anyWrites = false;
+      for (Map.Entry<Integer, List<Long>> entry : latencies.entrySet()){
+         List<Long> sorted = entry.getValue();
+         Collections.sort(sorted);
+         int count = sorted.size();
+         int failures = errors.get(entry.getKey())[0];
+         boolean write = isWriteChoice(entry.getKey());
+         anyWrites |= write;
+         System.out.println(String.format("%d\t%d\t%d\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f\t%s",
+            entry.getKey(), count, failures, count / seconds,
+            percentile(sorted, 0.50), percentile(sorted, 0.95),
+            percentile(sorted, 0.99), sorted.get(count - 1) / 1e6,
+            write ? "uncommitted" : ""));
+         total += count;
+         totalErrors += failures;
+      }
+      System.out.println(String.format("Replayed %d operations (%d errors) from %d sessions in %.2f s, %.1f ops/s",
+         total, totalErrors, sessions, seconds, total / seconds));
+      if (anyWrites)
+         System.out.println("Note: operations marked uncommitted were rolled back, so their " +
+                            "latencies leave out the commit and WAL flush a real session pays.");
+   }//end replay
+
+   // true for the menu choices that change data: the inserts 1-7 and 19
+   static boolean isWriteChoice(int choice) {
+      return (choice >= 1 && choice <= 7) || choice == 19;
+   }//end isWriteChoice
+
+   // the q-quantile of sorted nanosecond latencies, in milliseconds
+   static double percentile(List<Long> sorted, double q) {
+      int index = (int) Math.ceil(q * sorted.size()) - 1;
+      return sorted.get(Math.max(index, 0)) / 1e6;
+   }//end percentile
+
+   /*
+    * Serves the menu to thin clients on a loopback port.  The daemon keeps
+    * a pool of open connections, starting with the given number, so a
+    * client gets the menu without loading the driver or logging in.  Each
+    * client runs on its own thread with its input and output attached to
+    * its socket, and hands its connection back to the pool on EXIT.  The
+    * connections share one set of in-memory indexes, saved on shutdown.
+    *
+    * Any local user can reach a loopback port, so the daemon writes a
+    * random token to a file only its owner can read (see tokenFile) and
+    * drops clients whose first line is not that token.
+    **/
+   public static void daemon(final String dbname, final String dbport, final String user,
+                             int listenPort, int connections) throws Exception {
+      final LinkedList<DBProject> idle = new LinkedList<DBProject>();
+      for (int i = 0; i < connections; ++i)
+         idle.add(new DBProject(dbname, dbport, user, ""));
+      // the indexes are loaded over a pooled connection, so keep at least one
+      if (idle.isEmpty()) idle.add(new DBProject(dbname, dbport, user, ""));
+      final DataState state = loadState(idle.peek(), dbname);
+      for (DBProject esql : idle) esql._state = state;
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            saveState(state, dbname);
+         }
+      });
+
+      final ThreadRoutedPrintStream out = new ThreadRoutedPrintStream(System.out);
+      final ThreadRoutedPrintStream err = new ThreadRoutedPrintStream(System.err);
+      System.setOut(out);
+      System.setErr(err);
+
+      byte[] secret = new byte[16];
+      new SecureRandom().nextBytes(secret);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : secret) hex.append(String.format("%02x", b));
+      final byte[] token = hex.toString().getBytes("US-ASCII");
+      final Path tokenPath = tokenFile(listenPort);
+      Files.deleteIfExists(tokenPath);
+      Files.createFile(tokenPath, PosixFilePermissions.asFileAttribute(
+         PosixFilePermissions.fromString("rw-------")));
+      Files.write(tokenPath, token);
+
+      ServerSocket server = new ServerSocket(listenPort, 50, InetAddress.getByName("127.0.0.1"));
+      System.out.println("Serving the menu on 127.0.0.1:" + listenPort +
+                         " with " + connections + " warm connections");
+      ExecutorService pool = Executors.newCachedThreadPool();
+      try{
+         while (true){
+            final Socket client = server.accept();
+            pool.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  DBProject esql = null;
+                  try{
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                     client.setSoTimeout(5000);
+                     String offered = reader.readLine();
+                     if (offered == null ||
+                         !MessageDigest.isEqual(offered.getBytes("US-ASCII"), token))
+                        return null;
+                     client.setSoTimeout(0);
+
+                     PrintStream session = new PrintStream(client.getOutputStream(), true);
+                     out.attach(session);
+                     err.attach(session);
+                     in.attach(reader);
+                     synchronized (idle){
+                        esql = idle.poll();
+                     }
+                     if (esql == null){
+                        esql = new DBProject(dbname, dbport, user, "");
+                        esql._state = state;
+                     }
+
+                     Greeting();
+                     boolean keepon = true;
+                     while (keepon){
+                        printMenu();
+                        keepon = runChoice(esql, readChoice());
+                     }
+                     System.out.println("Bye !");
+                  }finally{
+                     out.attach(null);
+                     err.attach(null);
+                     in.attach(null);
+                     client.close();
+                     if (esql != null){
+                        synchronized (idle){
+                           idle.add(esql);
+                        }
+                     }
+                  }
+                  return null;
+               }
+            });
+         }
+      }finally{
+         server.close();
+         pool.shutdown();
+         Files.deleteIfExists(tokenPath);
+         for (DBProject esql : idle) esql.cleanup();
+      }
+   }//end daemon
+
+   // the file holding the daemon's client token, readable by its owner only
+   static Path tokenFile(int daemonPort) {
+      return Paths.get(System.getProperty("user.home"), ".dbproject-" + daemonPort + ".token");
+   }//end tokenFile
+
+   /*
+    * Thin client for the daemon: copies the keyboard to the daemon and the
+    * daemon's menu to the screen, returning as soon as the daemon ends the
+    * session.  The keyboard copier is a daemon thread so a read blocked on
+    * stdin does not keep the client alive.
+    **/
+   public static void client(int daemonPort) throws Exception {
+      byte[] token = Files.readAllBytes(tokenFile(daemonPort));
+      final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), daemonPort);
+      socket.getOutputStream().write(token);
+      socket.getOutputStream().write('\n');
+      Thread keyboard = new Thread() {
+         public void run() {
+            try{
+               copy(System.in, socket.getOutputStream());
+               socket.shutdownOutput();
+            }catch(IOException e){
+               // session closed by the daemon.
+            }
+         }
+      };
+      keyboard.setDaemon(true);
+      keyboard.start();
+      try{
+         copy(socket.getInputStream(), System.out);
+      }catch(IOException e){
+         // session closed.
+      }finally{
+         socket.close();
+      }
+   }//end client
+
+   // copies from until it ends, flushing after every read so prompts show
+   static void copy(InputStream from, OutputStream to) throws IOException {
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = from.read(buffer)) != -1){
+         to.write(buffer, 0, n);
+         to.flush();
+      }
+   }//end copy
+
+   /*
+    * Measures time-to-first-menu the way a user sees it: each run starts a
+    * fresh JVM and times it until the first "Please make your choice: "
+    * prompt.  The cold path runs the program directly, so it loads the
+    * driver and opens a connection; the warm path runs the thin client
+    * against a running daemon.  Both pay JVM startup.
+    **/
+   public static void benchStartup(String dbname, String dbport, String user,
+                                   int daemonPort, int runs) throws Exception {
+      if (runs < 1) throw new IllegalArgumentException("runs must be at least 1");
+      String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+      String classpath = System.getProperty("java.class.path");
+      String main = DBProject.class.getName();
+
+      List<Long> cold = new ArrayList<Long>();
+      List<Long> warm = new ArrayList<Long>();
+      for (int i = 0; i < runs; ++i){
+         cold.add(timeToMenu(new ProcessBuilder(java, "-cp", classpath, main, dbname, dbport, user)));
+         warm.add(timeToMenu(new ProcessBuilder(java, "-cp", classpath, main,
+                                                "--client", String.valueOf(daemonPort))));
+      }
+
+      System.out.println("path\truns\tmeanms\tp50ms\tp95ms\tmaxms");
+      for (int i = 0; i < 2; ++i){
+         List<Long> times = i == 0 ? cold : warm;
+         Collections.sort(times);
+         long sum = 0;
+         for (long t : times) sum += t;
+         System.out.println(String.format("%s\t%d\t%.2f\t%.2f\t%.2f\t%.2f",
+            i == 0 ? "cold" : "warm", runs, sum / 1e6 / runs,
+            percentile(times, 0.50), percentile(times, 0.95),
+            times.get(runs - 1) / 1e6));
+      }
+   }//end benchStartup
+
+   // starts the process, returns the nanos until its first menu prompt and
+   // then answers EXIT and waits for it to finish
+   static long timeToMenu(ProcessBuilder command) throws IOException, InterruptedException {
+      String prompt = "Please make your choice: ";
+      command.redirectErrorStream(true);
+      long t0 = System.nanoTime();
+      Process process = command.start();
+      InputStream output = process.getInputStream();
+      StringBuilder seen = new StringBuilder();
+      int c;
+      while (seen.indexOf(prompt) < 0 && (c = output.read()) != -1)
+         seen.append((char) c);
+      long elapsed = System.nanoTime() - t0;
+      if (seen.indexOf(prompt) < 0){
+         process.waitFor();
+         throw new IOException("Exited before showing the menu: " + seen);
+      }
+
+      OutputStream keyboard = process.getOutputStream();
+      keyboard.write("17\n".getBytes());
+      keyboard.close();
+      while (output.read() != -1) {}
+      process.waitFor();
+      return elapsed;
+   }//end timeToMenu
+
+   /*
+    * Restores the in-memory indexes from a snapshot file, catching up on
+    * the changes logged since it was taken, and writes the refreshed
+    * snapshot back.  Without a usable snapshot the indexes are built from the tables.
+    **/
+   public static void snapshot(DBProject esql, String file) throws Exception {
+      long t0 = System.nanoTime();
+      DataState state = DataState.restore(esql, file);
+      long t1 = System.nanoTime();
+      state.save(file);
+      long t2 = System.nanoTime();
+
+      System.out.println(String.format("%s in %.2f ms, saved in %.2f ms",
+         state.rebuilt ? "Built from tables" :
+            "Restored snapshot, applied " + state.applied + " changes,",
+         (t1 - t0) / 1e6, (t2 - t1) / 1e6));
+      System.out.println(state.roomsByHotel.groupCount() + " hotels, " +
+                         state.roomsByHotel.size() + " rooms, " +
+                         state.bookingsByDate.size() + " bookings, " +
+                         state.repairsByCompany.size() + " repairs, " +
+                         state.requestsByRepair.size() + " requests");
+   }//end snapshot
+
+   // the snapshot a menu session restores its in-memory indexes from
+   static Path stateFile(String dbname) {
+      return Paths.get(System.getProperty("user.home"), ".dbproject-" + dbname + ".snap");
+   }//end stateFile
+
+   /*
+    * Restores the in-memory indexes for a menu session, building them from
+    * the tables on the first run.  The menu falls back to plain queries
+    * when that fails, as on a database created without ChangeLog.
+    **/
+   static DataState loadState(DBProject esql, String dbname) {
+      try{
+         return DataState.restore(esql, stateFile(dbname).toString());
+      }catch(SQLException | IOException e){
+         System.err.println("Running without in-memory indexes: " + e.getMessage());
+         return null;
+      }
+   }//end loadState
+
+   static void saveState(DataState state, String dbname) {
+      if (state == null) return;
+      try{
+         state.save(stateFile(dbname).toString());
+      }catch(IOException e){
+         System.err.println("Could not save in-memory indexes: " + e.getMessage());
+      }
+   }//end saveState
+
+   // days since 1970-01-01 of a YYYY-MM-DD date, as bookingsByDate keys them
+   static int epochDay(String date) throws ParseException {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setLenient(false);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return (int) (format.parse(date.trim()).getTime() / 86400000L);
+   }//end epochDay
+
+   // ids as the body of an SQL IN list
+   static String idList(int[] ids) {
+      StringBuilder list = new StringBuilder();
+      for (int i = 0; i < ids.length; ++i){
+         if (i > 0) list.append(", ");
+         list.append(ids[i]);
+      }
+      return list.toString();
+   }//end idList
+
+   /**
+    * Print stream that hands every call to the print stream attached by
+    * the current thread, or to the fallback when none is attached.  The
+    * daemon installs it as stdout and stderr so every client sees only its
+    * own session.  Each client gets its own print stream, and so its own
+    * lock, so a client that stops reading stalls only its own session.
+    */
+   static class ThreadRoutedPrintStream extends PrintStream {
+      private final ThreadLocal<PrintStream> attached = new ThreadLocal<PrintStream>();
+      private final PrintStream fallback;
+
+      ThreadRoutedPrintStream(PrintStream fallback) {
+         super(fallback);
+         this.fallback = fallback;
+      }
+
+      void attach(PrintStream target) {
+         attached.set(target);
+      }
+
+      private PrintStream target() {
+         PrintStream target = attached.get();
+         return target != null ? target : fallback;
+      }
+
+      public void write(int b) { target().write(b); }
+      public void write(byte[] b, int off, int len) { target().write(b, off, len); }
+      public void flush() { target().flush(); }
+      public boolean checkError() { return target().checkError(); }
+      public void print(boolean b) { target().print(b); }
+      public void print(char c) { target().print(c); }
+      public void print(int i) { target().print(i); }
+      public void print(long l) { target().print(l); }
+      public void print(float f) { target().print(f); }
+      public void print(double d) { target().print(d); }
+      public void print(char[] s) { target().print(s); }
+      public void print(String s) { target().print(s); }
+      public void print(Object obj) { target().print(obj); }
+      public void println() { target().println(); }
+      public void println(boolean x) { target().println(x); }
+      public void println(char x) { target().println(x); }
+      public void println(int x) { target().println(x); }
+      public void println(long x) { target().println(x); }
+      public void println(float x) { target().println(x); }
+      public void println(double x) { target().println(x); }
+      public void println(char[] x) { target().println(x); }
+      public void println(String x) { target().println(x); }
+      public void println(Object x) { target().println(x); }
+      public PrintStream format(String format, Object... args) { target().format(format, args); return this; }
+      public PrintStream format(java.util.Locale l, String format, Object... args) { target().format(l, format, args); return this; }
+      public PrintStream append(CharSequence csq) { target().append(csq); return this; }
+      public PrintStream append(CharSequence csq, int start, int end) { target().append(csq, start, end); return this; }
+      public PrintStream append(char c) { target().append(c); return this; }
+   }//end ThreadRoutedPrintStream
+
+   /**
+    * The keyboard reader shared by all menu operations.  When recording it
+    * appends every line read to a session log, during a replay each thread
+    * reads its inputs from the list handed to it, and daemon sessions read
+    * from the client socket attached to their thread instead of stdin.
+    *
+    * Log lines are tab separated: "S start" opens a session, "C offset
+    * choice" is a menu choice, "I offset text" an input to the operation
+    * chosen before it and "E offset" marks where that operation finished.
+    * start is epoch millis, offsets are millis since it.
+    */
+   static class SessionReader extends BufferedReader {
+      private final ThreadLocal<LinkedList<String>> replayed = new ThreadLocal<LinkedList<String>>();
+      private final ThreadLocal<BufferedReader> attached = new ThreadLocal<BufferedReader>();
+      private PrintWriter log = null;
+      private long sessionStart;
+
+      SessionReader() {
+         super(new InputStreamReader(System.in));
+      }
+
+      void record(String file) throws IOException {
+         sessionStart = System.currentTimeMillis();
+         log = new PrintWriter(new FileWriter(file, true), true);
+         log.println("S\t" + sessionStart);
+      }
+
+      void stopRecording() {
+         if (log != null) log.close();
+         log = null;
+      }
+
+      // marks the end of the operation just run, where its think time ends
+      void endOperation() {
+         if (log != null)
+            log.println("E\t" + (System.currentTimeMillis() - sessionStart));
+      }
+
+      void replayInputs(LinkedList<String> inputs) {
+         replayed.set(inputs);
+      }
+
+      void attach(BufferedReader client) {
+         attached.set(client);
+      }
+
+      String readChoiceLine() throws IOException {
+         return read('C');
+      }
+
+      public String readLine() throws IOException {
+         return read('I');
+      }
+
+      private String read(char tag) throws IOException {
+         LinkedList<String> inputs = replayed.get();
+         if (inputs != null) return inputs.poll();
+         BufferedReader client = attached.get();
+         if (client != null) return client.readLine();
+         String line = super.readLine();
+         if (log != null && line != null)
+            log.println(tag + "\t" + (System.currentTimeMillis() - sessionStart) + "\t" + line);
+         return line;
+      }
+   }//end SessionReader
+
+   /**
+    * One menu operation read back from a session log: the choice, the
+    * inputs typed for it and the pause between the end of the previous
+    * operation and this choice.
+    */
+   static class RecordedOp {
+      int choice;
+      long think;
+      List<String> inputs = new ArrayList<String>();
+
+      // reads the log into sessions, leaving out invalid choices and EXIT
+      static List<List<RecordedOp>> load(String file) throws IOException {
+         List<List<RecordedOp>> sessions = new ArrayList<List<RecordedOp>>();
+         List<RecordedOp> session = null;
+         RecordedOp op = null;
+         long lastOffset = 0;
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         try{
+            String line;
+            while ((line = reader.readLine()) != null){
+               String[] fields = line.split("\t", 3);
+               if (fields[0].equals("S")){
+                  session = new ArrayList<RecordedOp>();
+                  sessions.add(session);
+                  op = null;
+                  lastOffset = 0;
+                  continue;
+               }
+               if (session == null || fields.length < 2) continue;
+               long offset = Long.parseLong(fields[1]);
+               if (fields[0].equals("E")){
+                  lastOffset = offset;
+               }else if (fields.length < 3){
+                  continue;
+               }else if (fields[0].equals("C")){
+                  op = null;
+                  try{
+                     int choice = Integer.parseInt(fields[2].trim());
+                     if (choice != 17){
+                        op = new RecordedOp();
+                        op.choice = choice;
+                        op.think = Math.max(offset - lastOffset, 0);
+                        session.add(op);
+                     }
+                  }catch(NumberFormatException e){
+                     // re-prompted by readChoice, not an operation
+                  }
+               }else if (op != null){
+                  op.inputs.add(fields[2]);
+               }
+            }
+         }finally{
+            reader.close();
+         }
+         return sessions;
+      }//end load
+   }//end RecordedOp
+
+
+
+   /**
+    * Ids grouped under an integer key, such as the rooms of each hotel.
+    * An index read from a snapshot keeps its keys and group offsets on the
+    * heap but leaves the ids in the mapped file; ids added or removed
+    * afterwards go to overlays that are merged in on lookup and on the next
+    * write.
+    *
+    * Written as: group count, id count, sorted keys, group offsets (one
+    * more than the groups), then the ids of every group in key order.
+    */
+   static class GroupedIndex {
+      private int[] keys = new int[0];
+      private int[] offsets = {0};
+      private IntBuffer ids = IntBuffer.allocate(0);
+      private final TreeMap<Integer, List<Integer>> added = new TreeMap<Integer, List<Integer>>();
+      private final TreeMap<Integer, List<Integer>> removed = new TreeMap<Integer, List<Integer>>();
+
+      GroupedIndex() {
+      }
+
+      GroupedIndex(Map<Integer, List<Integer>> groups) {
+         added.putAll(groups);
+      }
+
+      // reads an index at the buffer's position and moves past it, failing
+      // on sizes or offsets that do not fit the bytes left in the buffer
+      static GroupedIndex read(ByteBuffer buf) throws IOException {
+         GroupedIndex index = new GroupedIndex();
+         if (buf.remaining() < 8) throw new IOException("Truncated snapshot");
+         int groups = buf.getInt();
+         int count = buf.getInt();
+         if (groups < 0 || count < 0 || 4L * (2L * groups + 1 + count) > buf.remaining())
+            throw new IOException("Truncated snapshot");
+         index.keys = new int[groups];
+         index.offsets = new int[groups + 1];
+         buf.asIntBuffer().get(index.keys);
+         buf.position(buf.position() + 4 * groups);
+         buf.asIntBuffer().get(index.offsets);
+         buf.position(buf.position() + 4 * (groups + 1));
+         if (index.offsets[0] != 0 || index.offsets[groups] != count)
+            throw new IOException("Corrupt snapshot");
+         for (int i = 0; i < groups; ++i)
+            if (index.offsets[i] > index.offsets[i + 1] || (i > 0 && index.keys[i - 1] >= index.keys[i]))
+               throw new IOException("Corrupt snapshot");
+         ByteBuffer slice = buf.slice();
+         slice.limit(4 * count);
+         index.ids = slice.asIntBuffer();
+         buf.position(buf.position() + 4 * count);
+         return index;
+      }
+
+      void add(int key, int id) {
+         List<Integer> group = added.get(key);
+         if (group == null){
+            group = new ArrayList<Integer>();
+            added.put(key, group);
+         }
+         group.add(id);
+      }
+
+      // takes id out of the group under key; an id read from the snapshot
+      // stays in the mapped file and is skipped on lookup instead
+      void remove(int key, int id) {
+         List<Integer> group = added.get(key);
+         if (group != null && group.remove(Integer.valueOf(id))){
+            if (group.isEmpty()) added.remove(key);
+            return;
+         }
+         int base = Arrays.binarySearch(keys, key);
+         if (base < 0) return;
+         for (int i = offsets[base]; i < offsets[base + 1]; ++i){
+            if (ids.get(i) != id) continue;
+            List<Integer> gone = removed.get(key);
+            if (gone == null){
+               gone = new ArrayList<Integer>();
+               removed.put(key, gone);
+            }
+            if (!gone.contains(id)) gone.add(id);
+            return;
+         }
+      }
+
+      // the ids grouped under key, empty when there are none
+      int[] get(int key) {
+         int base = Arrays.binarySearch(keys, key);
+         int from = base >= 0 ? offsets[base] : 0;
+         int to = base >= 0 ? offsets[base + 1] : 0;
+         List<Integer> extra = added.get(key);
+         List<Integer> gone = removed.get(key);
+         int[] group = new int[to - from + (extra == null ? 0 : extra.size())];
+         int n = 0;
+         for (int i = from; i < to; ++i)
+            if (gone == null || !gone.contains(ids.get(i))) group[n++] = ids.get(i);
+         if (extra != null)
+            for (int id : extra) group[n++] = id;
+         return n == group.length ? group : Arrays.copyOf(group, n);
+      }
+
+      // the keys with at least one id under them
+      TreeSet<Integer> keySet() {
+         TreeSet<Integer> all = new TreeSet<Integer>(added.keySet());
+         for (int i = 0; i < keys.length; ++i){
+            List<Integer> gone = removed.get(keys[i]);
+            if (gone == null || gone.size() < offsets[i + 1] - offsets[i]) all.add(keys[i]);
+         }
+         return all;
+      }
+
+      int groupCount() {
+         return keySet().size();
+      }
+
+      int size() {
+         int count = offsets[offsets.length - 1];
+         for (List<Integer> group : added.values()) count += group.size();
+         for (List<Integer> group : removed.values()) count -= group.size();
+         return count;
+      }
+
+      int bytes() {
+         return 4 * (2 + 2 * groupCount() + 1 + size());
+      }
+
+      void write(ByteBuffer buf) {
+         TreeSet<Integer> all = keySet();
+         List<int[]> groups = new ArrayList<int[]>();
+         for (int key : all) groups.add(get(key));
+         buf.putInt(all.size());
+         buf.putInt(size());
+         for (int key : all) buf.putInt(key);
+         int offset = 0;
+         buf.putInt(offset);
+         for (int[] group : groups) buf.putInt(offset += group.length);
+         for (int[] group : groups)
+            for (int id : group) buf.putInt(id);
+      }
+   }//end GroupedIndex
+
+   /**
+    * In-memory indexes over the tables, and how far into ChangeLog they
+    * are.  ChangeLog is filled by triggers (see sql/create.sql) with one
+    * row per insert, update or delete, carrying the writing transaction's
+    * id, so catching up reads only the changes made since, never the
+    * tables themselves.
+    *
+    * Changes are not committed in seq order, so the position is kept as
+    * the oldest transaction still running when the indexes were last read
+    * (xmin) plus the changes already applied from that transaction on.
+    * Every transaction before xmin had finished by then, so its changes
+    * are already in; the changes from xmin on are read again on the next
+    * refresh and those not applied yet are applied.  ChangeLog is never
+    * trimmed, so a snapshot of any age can catch up.
+    *
+    * Menu sessions restore it at startup (see loadState) and refresh it
+    * before each operation that reads it; the lookups lock it so the
+    * daemon's sessions can share one.
+    */
+   static class DataState {
+      static final int MAGIC = 0x44425353; // "DBSS"
+      static final int FORMAT = 3;
+
+      GroupedIndex roomsByHotel;      // hotelID -> roomNo
+      GroupedIndex bookingsByDate;    // days since 1970-01-01 -> bID
+      GroupedIndex repairsByCompany;  // mCompany -> rID
+      GroupedIndex requestsByRepair;  // repairID -> reqID
+      long xmin;
+      TreeSet<Long> appliedSeqs = new TreeSet<Long>();
+
+      boolean rebuilt = false;
+      int applied = 0;
+
+      static long currentXmin(DBProject esql) throws SQLException {
+         return esql.executeColumns("SELECT txid_snapshot_xmin(txid_current_snapshot())", 0).getLong(1, 0);
+      }
+
+      /*
+       * Builds every index with full table scans.  The tables and ChangeLog
+       * are read in one serializable transaction, so the changes seen as
+       * applied are exactly the ones the scans saw.
+       */
+      static DataState build(DBProject esql) throws SQLException {
+         final DataState state = new DataState();
+         boolean ownTransaction = esql._connection.getAutoCommit();
+         int isolation = esql._connection.getTransactionIsolation();
+         if (ownTransaction){
+            esql._connection.setAutoCommit(false);
+            esql._connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+         }
+         try{
+            state.xmin = currentXmin(esql);
+            state.roomsByHotel = new GroupedIndex(esql.executeGroupedQuery(
+               "SELECT hotelID, roomNo FROM Room"));
+            state.bookingsByDate = new GroupedIndex(esql.executeGroupedQuery(
+               "SELECT bookingDate - DATE '1970-01-01', bID FROM Booking"));
+            state.repairsByCompany = new GroupedIndex(esql.executeGroupedQuery(
+               "SELECT mCompany, rID FROM Repair"));
+            state.requestsByRepair = new GroupedIndex(esql.executeGroupedQuery(
+               "SELECT repairID, reqID FROM Request"));
+            esql.executeQuery("SELECT seq FROM ChangeLog WHERE txid >= " + state.xmin, 0,
+               new RowHandler() {
+                  public boolean row(ResultRow row) {
+                     state.appliedSeqs.add(row.getLong(1));
+                     return true;
+                  }
+               });
+            if (ownTransaction) esql._connection.commit();
+         }catch(SQLException e){
+            if (ownTransaction) esql._connection.rollback();
+            throw e;
+         }finally{
+            if (ownTransaction){
+               esql._connection.setAutoCommit(true);
+               esql._connection.setTransactionIsolation(isolation);
+            }
+         }
+         state.rebuilt = true;
+         return state;
+      }
+
+      /*
+       * Maps the snapshot and applies the changes logged since it was
+       * written.  Falls back to build when the file is missing, unreadable
+       * or from another format.
+       */
+      static DataState restore(DBProject esql, String file) throws IOException, SQLException {
+         Path path = Paths.get(file);
+         if (!Files.exists(path)) return build(esql);
+
+         DataState state = new DataState();
+         FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+         try{
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != FORMAT)
+               return build(esql);
+            state.xmin = buf.getLong();
+            int seqs = buf.getInt();
+            if (seqs < 0 || 8L * seqs > buf.remaining()) throw new IOException("Truncated snapshot");
+            for (int i = 0; i < seqs; ++i) state.appliedSeqs.add(buf.getLong());
+            state.roomsByHotel = GroupedIndex.read(buf);
+            state.bookingsByDate = GroupedIndex.read(buf);
+            state.repairsByCompany = GroupedIndex.read(buf);
+            state.requestsByRepair = GroupedIndex.read(buf);
+         }catch(BufferUnderflowException | IOException e){
+            return build(esql); // truncated or corrupt snapshot
+         }finally{
+            channel.close();
+         }
+
+         state.refresh(esql);
+         return state;
+      }
+
+      /*
+       * Applies the changes logged since the last build or refresh.  xmin
+       * is read before ChangeLog, so a transaction that commits in between
+       * is at or above it and its changes are remembered as applied.
+       */
+      synchronized void refresh(DBProject esql) throws SQLException {
+         final long newXmin = currentXmin(esql);
+         final TreeSet<Long> seen = new TreeSet<Long>();
+         esql.executeQuery("SELECT seq, txid, tableName, oldGroup, oldKey, newGroup, newKey " +
+                           "FROM ChangeLog WHERE txid >= " + xmin + " ORDER BY seq", 0,
+            new RowHandler() {
+               public boolean row(ResultRow row) {
+                  long seq = row.getLong(1);
+                  if (row.getLong(2) >= newXmin) seen.add(seq);
+                  if (appliedSeqs.contains(seq)) return true;
+                  GroupedIndex index = indexOf(row.getString(3).trim());
+                  if (index == null) return true;
+                  if (!row.isNull(4)) index.remove((int) row.getLong(4), (int) row.getLong(5));
+                  if (!row.isNull(6)) index.add((int) row.getLong(6), (int) row.getLong(7));
+                  ++applied;
+                  return true;
+               }
+            });
+         xmin = newXmin;
+         appliedSeqs = seen;
+      }
+
+      synchronized int[] roomsOf(int hotelID) {
+         return roomsByHotel.get(hotelID);
+      }
+
+      // the bookings made for the days days from fromDay on
+      synchronized int[] bookingsOn(int fromDay, int days) {
+         int[] found = new int[0];
+         for (int day = fromDay; day < fromDay + days; ++day){
+            int[] booked = bookingsByDate.get(day);
+            int at = found.length;
+            found = Arrays.copyOf(found, at + booked.length);
+            System.arraycopy(booked, 0, found, at, booked.length);
+         }
+         return found;
+      }
+
+      // the requests raised for the repairs of a maintenance company
+      synchronized int[] requestsOfCompany(int cmpID) {
+         int[] found = new int[0];
+         for (int repair : repairsByCompany.get(cmpID)){
+            int[] raised = requestsByRepair.get(repair);
+            int at = found.length;
+            found = Arrays.copyOf(found, at + raised.length);
+            System.arraycopy(raised, 0, found, at, raised.length);
+         }
+         return found;
+      }
+
+      private GroupedIndex indexOf(String table) {
+         if (table.equals("Room")) return roomsByHotel;
+         if (table.equals("Booking")) return bookingsByDate;
+         if (table.equals("Repair")) return repairsByCompany;
+         if (table.equals("Request")) return requestsByRepair;
+         return null;
+      }
+
+      // writes the snapshot next to file and moves it over, so a crash
+      // mid-write leaves the previous snapshot intact
+      synchronized void save(String file) throws IOException {
+         int size = 4 * 2 + 8 + 4 + 8 * appliedSeqs.size() + roomsByHotel.bytes() + bookingsByDate.bytes()
+                  + repairsByCompany.bytes() + requestsByRepair.bytes();
+         ByteBuffer buf = ByteBuffer.allocate(size);
+         buf.putInt(MAGIC);
+         buf.putInt(FORMAT);
+         buf.putLong(xmin);
+         buf.putInt(appliedSeqs.size());
+         for (long seq : appliedSeqs) buf.putLong(seq);
+         roomsByHotel.write(buf);
+         bookingsByDate.write(buf);
+         repairsByCompany.write(buf);
+         requestsByRepair.write(buf);
+         buf.flip();
+
+         Path path = Paths.get(file);
+         Path tmp = Paths.get(file + ".tmp");
+         FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         try{
+            while (buf.hasRemaining()) channel.write(buf);
+            channel.force(true);
+         }finally{
+            channel.close();
+         }
+         Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+   }//end DataState
+
+   /**
+    * Receives the rows of a query one at a time.
+    */
+   public interface RowHandler {
+      boolean row(ResultRow row) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * A reusable buffer holding one row of a result.  Integer columns are
+    * kept as longs, floating point columns as doubles, other numeric
+    * columns as BigDecimals and everything else as strings, so reading a
+    * value back does not parse text.  Columns are numbered from 1 as in
+    * JDBC.
+    *
+    * A NUMERIC column without a scale, as every key in this schema is,
+    * starts out as longs; if a row holds a fraction the column switches to
+    * BigDecimal from that row on.
+    */
+   public static class ResultRow {
+      static final int LONG = 0, DOUBLE = 1, DECIMAL = 2, STRING = 3;
+
+      final String[] names;
+      final int[] kinds;
+      final boolean[] unscaled;
+      final long[] longs;
+      final double[] doubles;
+      final BigDecimal[] decimals;
+      final String[] strings;
+      final boolean[] nulls;
+
+      ResultRow(ResultSetMetaData rsmd) throws SQLException {
+         int numCol = rsmd.getColumnCount();
+         names = new String[numCol];
+         kinds = new int[numCol];
+         unscaled = new boolean[numCol];
+         longs = new long[numCol];
+         doubles = new double[numCol];
+         decimals = new BigDecimal[numCol];
+         strings = new String[numCol];
+         nulls = new boolean[numCol];
+         for (int i = 0; i < numCol; ++i){
+            names[i] = rsmd.getColumnName(i + 1);
+            switch (rsmd.getColumnType(i + 1)){
+               case Types.TINYINT: case Types.SMALLINT:
+               case Types.INTEGER: case Types.BIGINT:
+                  kinds[i] = LONG; break;
+               case Types.NUMERIC: case Types.DECIMAL:
+                  // the driver reports 65531 for a NUMERIC without a
+                  // declared scale, anything outside 0..1000 means none
+                  int scale = rsmd.getScale(i + 1);
+                  unscaled[i] = scale == 0 || scale < 0 || scale > 1000;
+                  kinds[i] = unscaled[i] ? LONG : DECIMAL; break;
+               case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+                  kinds[i] = DOUBLE; break;
+               default:
+                  kinds[i] = STRING; break;
+            }
+         }
+      }
+
+      void fill(ResultSet rs) throws SQLException {
+         for (int i = 0; i < kinds.length; ++i){
+            switch (kinds[i]){
+               case LONG:
+                  if (!unscaled[i]){
+                     longs[i] = rs.getLong(i + 1);
+                     break;
+                  }
+                  String text = rs.getString(i + 1);
+                  if (text == null) break;
+                  try{
+                     longs[i] = Long.parseLong(text.trim());
+                  }catch(NumberFormatException e){
+                     kinds[i] = DECIMAL;
+                     decimals[i] = new BigDecimal(text.trim());
+                  }
+                  break;
+               case DOUBLE: doubles[i] = rs.getDouble(i + 1); break;
+               case DECIMAL: decimals[i] = rs.getBigDecimal(i + 1); break;
+               default: strings[i] = rs.getString(i + 1); break;
+            }
+            nulls[i] = rs.wasNull();
+         }
+      }
+
+      public int getColumnCount() {
+         return kinds.length;
+      }
+
+      public String getColumnName(int col) {
+         return names[col - 1];
+      }
+
+      public boolean isNull(int col) {
+         return nulls[col - 1];
+      }
+
+      public long getLong(int col) {
+         if (nulls[col - 1]) return 0;
+         switch (kinds[col - 1]){
+            case LONG: return longs[col - 1];
+            case DOUBLE: return (long) doubles[col - 1];
+            case DECIMAL: return decimals[col - 1].longValue();
+            default: return Long.parseLong(strings[col - 1].trim());
+         }
+      }
+
+      public double getDouble(int col) {
+         if (nulls[col - 1]) return 0;
+         switch (kinds[col - 1]){
+            case LONG: return longs[col - 1];
+            case DOUBLE: return doubles[col - 1];
+            case DECIMAL: return decimals[col - 1].doubleValue();
+            default: return Double.parseDouble(strings[col - 1].trim());
+         }
+      }
+
+      public BigDecimal getBigDecimal(int col) {
+         if (nulls[col - 1]) return null;
+         switch (kinds[col - 1]){
+            case LONG: return BigDecimal.valueOf(longs[col - 1]);
+            case DOUBLE: return BigDecimal.valueOf(doubles[col - 1]);
+            case DECIMAL: return decimals[col - 1];
+            default: return new BigDecimal(strings[col - 1].trim());
+         }
+      }
+
+      public String getString(int col) {
+         if (nulls[col - 1]) return null;
+         switch (kinds[col - 1]){
+            case LONG: return String.valueOf(longs[col - 1]);
+            case DOUBLE: return String.valueOf(doubles[col - 1]);
+            case DECIMAL: return decimals[col - 1].toPlainString();
+            default: return strings[col - 1];
+         }
+      }
+   }//end ResultRow
+
+   /**
+    * A whole result stored column by column, in primitive arrays where the
+    * column type allows it.  Columns are numbered from 1 and rows from 0.
+    */
+   public static class ResultColumns {
+      private final String[] names;
+      private final int[] kinds;
+      private final long[][] longs;
+      private final double[][] doubles;
+      private final BigDecimal[][] decimals;
+      private final String[][] strings;
+      private final boolean[][] nulls;
+      private int size = 0;
+
+      // empty columns shaped like the row buffer, before any row is read
+      ResultColumns(ResultRow row) {
+         int numCol = row.getColumnCount();
+         names = row.names;
+         kinds = row.kinds.clone();
+         longs = new long[numCol][];
+         doubles = new double[numCol][];
+         decimals = new BigDecimal[numCol][];
+         strings = new String[numCol][];
+         nulls = new boolean[numCol][];
+         for (int i = 0; i < numCol; ++i){
+            if (kinds[i] == ResultRow.LONG) longs[i] = new long[16];
+            else if (kinds[i] == ResultRow.DOUBLE) doubles[i] = new double[16];
+            else if (kinds[i] == ResultRow.DECIMAL) decimals[i] = new BigDecimal[16];
+            else strings[i] = new String[16];
+            nulls[i] = new boolean[16];
+         }
+      }
+
+      void add(ResultRow row) {
+         int numCol = row.getColumnCount();
+         if (numCol > 0 && size == nulls[0].length){
+            int capacity = size * 2;
+            for (int i = 0; i < numCol; ++i){
+               if (longs[i] != null) longs[i] = Arrays.copyOf(longs[i], capacity);
+               if (doubles[i] != null) doubles[i] = Arrays.copyOf(doubles[i], capacity);
+               if (decimals[i] != null) decimals[i] = Arrays.copyOf(decimals[i], capacity);
+               if (strings[i] != null) strings[i] = Arrays.copyOf(strings[i], capacity);
+               nulls[i] = Arrays.copyOf(nulls[i], capacity);
+            }
+         }
+         for (int i = 0; i < numCol; ++i){
+            // an unscaled NUMERIC column met its first fraction
+            if (kinds[i] == ResultRow.LONG && row.kinds[i] == ResultRow.DECIMAL){
+               decimals[i] = new BigDecimal[nulls[i].length];
+               for (int j = 0; j < size; ++j) decimals[i][j] = BigDecimal.valueOf(longs[i][j]);
+               longs[i] = null;
+               kinds[i] = ResultRow.DECIMAL;
+            }
+            if (longs[i] != null) longs[i][size] = row.longs[i];
+            else if (doubles[i] != null) doubles[i][size] = row.doubles[i];
+            else if (decimals[i] != null) decimals[i][size] = row.decimals[i];
+            else strings[i][size] = row.strings[i];
+            nulls[i][size] = row.nulls[i];
+         }
+         ++size;
+      }
+
+      public int size() {
+         return size;
+      }
+
+      public int getColumnCount() {
+         return names.length;
+      }
+
+      // the column number for a name, or -1 when there is no such column
+      public int findColumn(String name) {
+         for (int i = 0; i < names.length; ++i)
+            if (names[i].equalsIgnoreCase(name)) return i + 1;
+         return -1;
+      }
+
+      public boolean isNull(int col, int row) {
+         return nulls[col - 1][row];
+      }
+
+      public long getLong(int col, int row) {
+         if (isNull(col, row)) return 0;
+         if (longs[col - 1] != null) return longs[col - 1][row];
+         if (doubles[col - 1] != null) return (long) doubles[col - 1][row];
+         if (decimals[col - 1] != null) return decimals[col - 1][row].longValue();
+         return Long.parseLong(strings[col - 1][row].trim());
+      }
+
+      public double getDouble(int col, int row) {
+         if (isNull(col, row)) return 0;
+         if (longs[col - 1] != null) return longs[col - 1][row];
+         if (doubles[col - 1] != null) return doubles[col - 1][row];
+         if (decimals[col - 1] != null) return decimals[col - 1][row].doubleValue();
+         return Double.parseDouble(strings[col - 1][row].trim());
+      }
+
+      public BigDecimal getBigDecimal(int col, int row) {
+         if (isNull(col, row)) return null;
+         if (longs[col - 1] != null) return BigDecimal.valueOf(longs[col - 1][row]);
+         if (doubles[col - 1] != null) return BigDecimal.valueOf(doubles[col - 1][row]);
+         if (decimals[col - 1] != null) return decimals[col - 1][row];
+         return new BigDecimal(strings[col - 1][row].trim());
+      }
+
+      public String getString(int col, int row) {
+         if (isNull(col, row)) return null;
+         if (longs[col - 1] != null) return String.valueOf(longs[col - 1][row]);
+         if (doubles[col - 1] != null) return String.valueOf(doubles[col - 1][row]);
+         if (decimals[col - 1] != null) return decimals[col - 1][row].toPlainString();
+         return strings[col - 1][row];
+      }
+
+      // the raw vector of an integer column, valid up to size(), or null
+      public long[] longColumn(int col) {
+         return longs[col - 1];
+      }
+
+      // the raw vector of a floating point column, valid up to size(), or null
+      public double[] doubleColumn(int col) {
+         return doubles[col - 1];
+      }
+   }//end ResultColumns
 
 }//end DBProject
 
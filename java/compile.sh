@@ -13,3 +13,12 @@ javac DBProject.java
 #Use your database name, port number and login
 java DBProject $USER"_DB" $PGPORT $USER
 
+
+#To skip the driver and connection startup on every session, keep a daemon
+#with warm connections running and attach to it with the thin client instead:
+#java DBProject $USER"_DB" $PGPORT $USER --daemon 5166 4 &
+#java DBProject --client 5166
+
+#The menu keeps its in-memory indexes in ~/.dbproject-<dbname>.snap; to
+#restore them from another snapshot file and refresh it without the menu:
+#java DBProject $USER"_DB" $PGPORT $USER --snapshot state.snap
@@ -9,6 +9,7 @@ DROP TABLE IF EXISTS Booking CASCADE;
 DROP TABLE IF EXISTS Repair CASCADE;
 DROP TABLE IF EXISTS Request CASCADE;
 DROP TABLE IF EXISTS Assigned CASCADE;
+DROP TABLE IF EXISTS ChangeLog CASCADE;
 
 -- The below sql statements drops of the enum types if they exits
 DROP TYPE IF EXISTS StaffRole CASCADE;
@@ -228,4 +229,93 @@ COPY Assigned(asgID,
 			  roomNo)
 FROM 'assigned.csv'
 WITH DELIMITER ',';		
-	
\ No newline at end of file
+
+-- The below statements log every change to the tables DBProject keeps
+-- in-memory indexes of, so a restored snapshot only has to read the changes
+-- made since it was written. They come after the data copy so the initial
+-- load is not logged. seq orders the changes and txid is the writing
+-- transaction, so a reader can tell which changes may still be uncommitted.
+CREATE TABLE ChangeLog( seq BIGSERIAL NOT NULL,
+						txid BIGINT NOT NULL DEFAULT txid_current(),
+						tableName CHAR(10) NOT NULL,
+						oldGroup Numeric,
+						oldKey Numeric,
+						newGroup Numeric,
+						newKey Numeric,
+						PRIMARY KEY(seq));
+
+CREATE OR REPLACE FUNCTION logRoomChange() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO ChangeLog(tableName, newGroup, newKey)
+		VALUES ('Room', NEW.hotelID, NEW.roomNo);
+	ELSIF TG_OP = 'UPDATE' THEN
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey, newGroup, newKey)
+		VALUES ('Room', OLD.hotelID, OLD.roomNo, NEW.hotelID, NEW.roomNo);
+	ELSE
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey)
+		VALUES ('Room', OLD.hotelID, OLD.roomNo);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER roomChangeLog AFTER INSERT OR UPDATE OR DELETE ON Room
+FOR EACH ROW EXECUTE PROCEDURE logRoomChange();
+
+CREATE OR REPLACE FUNCTION logBookingChange() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO ChangeLog(tableName, newGroup, newKey)
+		VALUES ('Booking', NEW.bookingDate - DATE '1970-01-01', NEW.bID);
+	ELSIF TG_OP = 'UPDATE' THEN
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey, newGroup, newKey)
+		VALUES ('Booking', OLD.bookingDate - DATE '1970-01-01', OLD.bID, NEW.bookingDate - DATE '1970-01-01', NEW.bID);
+	ELSE
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey)
+		VALUES ('Booking', OLD.bookingDate - DATE '1970-01-01', OLD.bID);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bookingChangeLog AFTER INSERT OR UPDATE OR DELETE ON Booking
+FOR EACH ROW EXECUTE PROCEDURE logBookingChange();
+
+CREATE OR REPLACE FUNCTION logRepairChange() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO ChangeLog(tableName, newGroup, newKey)
+		VALUES ('Repair', NEW.mCompany, NEW.rID);
+	ELSIF TG_OP = 'UPDATE' THEN
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey, newGroup, newKey)
+		VALUES ('Repair', OLD.mCompany, OLD.rID, NEW.mCompany, NEW.rID);
+	ELSE
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey)
+		VALUES ('Repair', OLD.mCompany, OLD.rID);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER repairChangeLog AFTER INSERT OR UPDATE OR DELETE ON Repair
+FOR EACH ROW EXECUTE PROCEDURE logRepairChange();
+
+CREATE OR REPLACE FUNCTION logRequestChange() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO ChangeLog(tableName, newGroup, newKey)
+		VALUES ('Request', NEW.repairID, NEW.reqID);
+	ELSIF TG_OP = 'UPDATE' THEN
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey, newGroup, newKey)
+		VALUES ('Request', OLD.repairID, OLD.reqID, NEW.repairID, NEW.reqID);
+	ELSE
+		INSERT INTO ChangeLog(tableName, oldGroup, oldKey)
+		VALUES ('Request', OLD.repairID, OLD.reqID);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER requestChangeLog AFTER INSERT OR UPDATE OR DELETE ON Request
+FOR EACH ROW EXECUTE PROCEDURE logRequestChange();
@@ -18,3 +18,7 @@ ON MaintenanceCompany(name);
 -- Join with Repair and filter (queries 16, 18)
 CREATE INDEX idx_request_repairid 
 ON Request(repairID);
+
+-- Changes made since a snapshot was written (DataState.refresh)
+CREATE INDEX idx_changelog_txid 
+ON ChangeLog(txid);